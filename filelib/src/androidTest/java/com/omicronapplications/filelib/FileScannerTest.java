@@ -0,0 +1,313 @@
+package com.omicronapplications.filelib;
+
+import android.content.Context;
+import android.content.Intent;
+import android.net.Uri;
+import android.os.SystemClock;
+import androidx.test.platform.app.InstrumentationRegistry;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(AndroidJUnit4.class)
+public class FileScannerTest {
+    private static final String TEST_DIR1 = "ScanDir.1";
+    private static final String TEST_DIR2 = "ScanDir.2";
+    private static final String TEST_FILE1 = "ScanFile1.mod";
+    private static final String TEST_FILE2 = "ScanFile2.mod";
+    private static final String TEST_FILE3 = "ScanFile3.txt";
+    private static final String SCAN_ID = "test";
+    private static final int TIMEOUT = 30;
+
+    private Context mAppContext;
+    private FileManager mFileManager;
+    private FileScanner mScanner;
+    private Callback mCallback;
+
+    private static class Callback implements IScanCallback {
+        private final Set<String> mFound = Collections.synchronizedSet(new HashSet<String>());
+        private final List<Integer> mFinishedStorages = Collections.synchronizedList(new ArrayList<Integer>());
+        private CountDownLatch mFinished = new CountDownLatch(1);
+        private volatile boolean mCompleted;
+        private volatile Runnable mOnFirstFile;
+
+        @Override
+        public void onFileFound(int storage, File file) {
+            mFound.add(file.getName());
+            Runnable onFirstFile = mOnFirstFile;
+            mOnFirstFile = null;
+            if (onFirstFile != null) {
+                onFirstFile.run();
+            }
+        }
+
+        @Override
+        public void onScanFinished(int storage, boolean completed) {
+            mCompleted = completed;
+            mFinishedStorages.add(storage);
+            mFinished.countDown();
+        }
+
+        private void reset(int count) {
+            mFinishedStorages.clear();
+            mFinished = new CountDownLatch(count);
+        }
+    }
+
+    private static class ModFilter implements FileFilter {
+        @Override
+        public boolean accept(File file) {
+            return file.getName().endsWith(".mod");
+        }
+    }
+
+    private void deleteTestFiles(int storage) {
+        mFileManager = new FileManager(mAppContext, storage);
+        File top = mFileManager.changeDirTop();
+        File dir1 = new File(top, TEST_DIR1);
+        File dir2 = new File(dir1, TEST_DIR2);
+        mFileManager.delete(dir2.getPath(), TEST_FILE3);
+        mFileManager.delete(dir1.getPath(), TEST_DIR2);
+        mFileManager.delete(dir1.getPath(), TEST_FILE2);
+        mFileManager.delete(null, TEST_DIR1);
+        mFileManager.delete(null, TEST_FILE1);
+    }
+
+    private void createTestFiles(int storage) {
+        mFileManager = new FileManager(mAppContext, storage);
+        mFileManager.changeDirTop();
+        assertNotNull("createNewFile", mFileManager.createNewFile(TEST_FILE1));
+        assertNotNull("mkdir", mFileManager.mkdir(TEST_DIR1));
+        mFileManager.changeDir(null, TEST_DIR1);
+        assertNotNull("createNewFile", mFileManager.createNewFile(TEST_FILE2));
+        assertNotNull("mkdir", mFileManager.mkdir(TEST_DIR2));
+        mFileManager.changeDir(null, TEST_DIR2);
+        assertNotNull("createNewFile", mFileManager.createNewFile(TEST_FILE3));
+    }
+
+    @Before
+    public void setup() {
+        mAppContext = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        deleteTestFiles(FileManager.STORAGE_INTERNAL);
+        createTestFiles(FileManager.STORAGE_INTERNAL);
+        mCallback = new Callback();
+    }
+
+    @After
+    public void teardown() throws InterruptedException {
+        if (mScanner != null) {
+            mScanner.release();
+            assertTrue("terminated", mScanner.awaitTermination(TIMEOUT, TimeUnit.SECONDS));
+            mScanner.clearCheckpoint(FileManager.STORAGE_INTERNAL);
+            mScanner.clearCheckpoint(FileManager.STORAGE_EXTERNAL);
+            mScanner.clearCheckpoint(FileManager.STORAGE_EXTERNAL + 1);
+        }
+        deleteTestFiles(FileManager.STORAGE_INTERNAL);
+    }
+
+    private void newScanner(int maxThreads, int maxDirsPerSecond) throws InterruptedException {
+        if (mScanner != null) {
+            mScanner.release();
+            assertTrue("terminated", mScanner.awaitTermination(TIMEOUT, TimeUnit.SECONDS));
+        }
+        mScanner = new FileScanner(mAppContext, SCAN_ID, mCallback, new ModFilter(), maxThreads, maxDirsPerSecond);
+    }
+
+    @Test
+    public void testScan() throws InterruptedException {
+        newScanner(1, FileScanner.RATE_UNLIMITED);
+        mScanner.clearCheckpoint(FileManager.STORAGE_INTERNAL);
+        assertTrue("scan", mScanner.scan(FileManager.STORAGE_INTERNAL, FileScanner.PRIORITY_HIGH));
+        assertTrue("finished", mCallback.mFinished.await(TIMEOUT, TimeUnit.SECONDS));
+        assertTrue("completed", mCallback.mCompleted);
+        assertTrue("found", mCallback.mFound.contains(TEST_FILE1));
+        assertTrue("found", mCallback.mFound.contains(TEST_FILE2));
+        assertFalse("filter", mCallback.mFound.contains(TEST_FILE3));
+        assertFalse("checkpoint", mScanner.hasCheckpoint(FileManager.STORAGE_INTERNAL));
+        assertFalse("scanning", mScanner.isScanning(FileManager.STORAGE_INTERNAL));
+    }
+
+    @Test
+    public void testResume() throws InterruptedException {
+        final CountDownLatch blocked = new CountDownLatch(1);
+        final CountDownLatch unblock = new CountDownLatch(1);
+        newScanner(1, FileScanner.RATE_UNLIMITED);
+        mScanner.clearCheckpoint(FileManager.STORAGE_INTERNAL);
+        mCallback.mOnFirstFile = new Runnable() {
+            @Override
+            public void run() {
+                mScanner.stop(FileManager.STORAGE_INTERNAL);
+                blocked.countDown();
+                try {
+                    unblock.await(TIMEOUT, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        assertTrue("scan", mScanner.scan(FileManager.STORAGE_INTERNAL));
+        assertTrue("blocked", blocked.await(TIMEOUT, TimeUnit.SECONDS));
+        assertFalse("scan", mScanner.scan(FileManager.STORAGE_INTERNAL));
+        unblock.countDown();
+        assertTrue("finished", mCallback.mFinished.await(TIMEOUT, TimeUnit.SECONDS));
+        assertFalse("completed", mCallback.mCompleted);
+        assertTrue("checkpoint", mScanner.hasCheckpoint(FileManager.STORAGE_INTERNAL));
+        assertTrue("found", mCallback.mFound.contains(TEST_FILE1));
+        assertFalse("found", mCallback.mFound.contains(TEST_FILE2));
+
+        // Resume from checkpoint
+        mCallback.reset(1);
+        newScanner(1, FileScanner.RATE_UNLIMITED);
+        assertTrue("scan", mScanner.scan(FileManager.STORAGE_INTERNAL));
+        assertTrue("finished", mCallback.mFinished.await(TIMEOUT, TimeUnit.SECONDS));
+        assertTrue("completed", mCallback.mCompleted);
+        assertTrue("found", mCallback.mFound.contains(TEST_FILE2));
+        assertFalse("checkpoint", mScanner.hasCheckpoint(FileManager.STORAGE_INTERNAL));
+        assertEquals("found", 2, mCallback.mFound.size());
+    }
+
+    @Test
+    public void testScanId() throws InterruptedException {
+        newScanner(1, FileScanner.RATE_UNLIMITED);
+        mScanner.clearCheckpoint(FileManager.STORAGE_INTERNAL);
+        mCallback.mOnFirstFile = new Runnable() {
+            @Override
+            public void run() {
+                mScanner.stop(FileManager.STORAGE_INTERNAL);
+            }
+        };
+        assertTrue("scan", mScanner.scan(FileManager.STORAGE_INTERNAL));
+        assertTrue("finished", mCallback.mFinished.await(TIMEOUT, TimeUnit.SECONDS));
+        assertTrue("checkpoint", mScanner.hasCheckpoint(FileManager.STORAGE_INTERNAL));
+
+        FileScanner other = new FileScanner(mAppContext, SCAN_ID + ".other", mCallback, new ModFilter());
+        assertFalse("checkpoint", other.hasCheckpoint(FileManager.STORAGE_INTERNAL));
+        other.release();
+    }
+
+    @Test
+    public void testMediaRemoved() throws InterruptedException {
+        newScanner(1, FileScanner.RATE_UNLIMITED);
+        mScanner.clearCheckpoint(FileManager.STORAGE_INTERNAL);
+        mCallback.mOnFirstFile = new Runnable() {
+            @Override
+            public void run() {
+                mScanner.onTopDirsChanged(Collections.<File>emptyList());
+            }
+        };
+        assertTrue("scan", mScanner.scan(FileManager.STORAGE_INTERNAL));
+        assertTrue("finished", mCallback.mFinished.await(TIMEOUT, TimeUnit.SECONDS));
+        assertFalse("completed", mCallback.mCompleted);
+        assertFalse("scanning", mScanner.isScanning(FileManager.STORAGE_INTERNAL));
+        assertTrue("checkpoint", mScanner.hasCheckpoint(FileManager.STORAGE_INTERNAL));
+        assertFalse("found", mCallback.mFound.contains(TEST_FILE2));
+    }
+
+    @Test
+    public void testMediaEject() throws InterruptedException {
+        final FileManager fileManager = new FileManager(mAppContext);
+        newScanner(1, FileScanner.RATE_UNLIMITED);
+        mScanner.clearCheckpoint(FileManager.STORAGE_INTERNAL);
+        fileManager.setCallback(mScanner);
+        mCallback.mOnFirstFile = new Runnable() {
+            @Override
+            public void run() {
+                Uri path = Uri.fromFile(mAppContext.getFilesDir());
+                fileManager.onReceive(mAppContext, new Intent(Intent.ACTION_MEDIA_EJECT, path));
+            }
+        };
+        assertTrue("scan", mScanner.scan(FileManager.STORAGE_INTERNAL));
+        assertTrue("finished", mCallback.mFinished.await(TIMEOUT, TimeUnit.SECONDS));
+        fileManager.unsetCallback();
+        assertFalse("completed", mCallback.mCompleted);
+        assertFalse("scanning", mScanner.isScanning(FileManager.STORAGE_INTERNAL));
+        assertTrue("checkpoint", mScanner.hasCheckpoint(FileManager.STORAGE_INTERNAL));
+        assertFalse("found", mCallback.mFound.contains(TEST_FILE2));
+    }
+
+    @Test
+    public void testDirRemoved() throws InterruptedException {
+        newScanner(1, FileScanner.RATE_UNLIMITED);
+        mScanner.clearCheckpoint(FileManager.STORAGE_INTERNAL);
+        mCallback.mOnFirstFile = new Runnable() {
+            @Override
+            public void run() {
+                deleteTestFiles(FileManager.STORAGE_INTERNAL);
+            }
+        };
+        assertTrue("scan", mScanner.scan(FileManager.STORAGE_INTERNAL));
+        assertTrue("finished", mCallback.mFinished.await(TIMEOUT, TimeUnit.SECONDS));
+        assertTrue("completed", mCallback.mCompleted);
+        assertTrue("found", mCallback.mFound.contains(TEST_FILE1));
+        assertEquals("found", 1, mCallback.mFound.size());
+        assertFalse("checkpoint", mScanner.hasCheckpoint(FileManager.STORAGE_INTERNAL));
+    }
+
+    @Test
+    public void testRate() throws InterruptedException {
+        // Top dir, TEST_DIR1 and TEST_DIR2 at 2 dirs per second
+        newScanner(1, 2);
+        mScanner.clearCheckpoint(FileManager.STORAGE_INTERNAL);
+        long start = SystemClock.elapsedRealtime();
+        assertTrue("scan", mScanner.scan(FileManager.STORAGE_INTERNAL));
+        assertTrue("finished", mCallback.mFinished.await(TIMEOUT, TimeUnit.SECONDS));
+        long elapsed = SystemClock.elapsedRealtime() - start;
+        assertTrue("completed", mCallback.mCompleted);
+        assertTrue("elapsed", elapsed >= 1000);
+    }
+
+    @Test
+    public void testPriority() throws InterruptedException {
+        final CountDownLatch blocked = new CountDownLatch(1);
+        final CountDownLatch unblock = new CountDownLatch(1);
+        newScanner(1, FileScanner.RATE_UNLIMITED);
+        mScanner.clearCheckpoint(FileManager.STORAGE_INTERNAL);
+        mScanner.clearCheckpoint(FileManager.STORAGE_EXTERNAL);
+        mScanner.clearCheckpoint(FileManager.STORAGE_EXTERNAL + 1);
+        mCallback.reset(3);
+        mCallback.mOnFirstFile = new Runnable() {
+            @Override
+            public void run() {
+                blocked.countDown();
+                try {
+                    unblock.await(TIMEOUT, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+
+        // Low priority scan occupies the only thread, high priority scan pauses it
+        assertTrue("scan", mScanner.scan(FileManager.STORAGE_INTERNAL, FileScanner.PRIORITY_LOW));
+        assertTrue("blocked", blocked.await(TIMEOUT, TimeUnit.SECONDS));
+        assertTrue("scan", mScanner.scan(FileManager.STORAGE_EXTERNAL, FileScanner.PRIORITY_LOW));
+        assertTrue("scan", mScanner.scan(FileManager.STORAGE_EXTERNAL + 1, FileScanner.PRIORITY_HIGH));
+        unblock.countDown();
+        assertTrue("finished", mCallback.mFinished.await(TIMEOUT, TimeUnit.SECONDS));
+
+        List<Integer> order = Arrays.asList(FileManager.STORAGE_EXTERNAL + 1, FileManager.STORAGE_INTERNAL, FileManager.STORAGE_EXTERNAL);
+        assertEquals("order", order, mCallback.mFinishedStorages);
+        assertTrue("completed", mCallback.mCompleted);
+        assertTrue("found", mCallback.mFound.contains(TEST_FILE2));
+        assertFalse("checkpoint", mScanner.hasCheckpoint(FileManager.STORAGE_INTERNAL));
+    }
+}
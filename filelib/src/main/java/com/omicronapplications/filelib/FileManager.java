@@ -4,6 +4,7 @@ import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.net.Uri;
 import android.os.Build;
 import android.util.Log;
 
@@ -50,7 +51,13 @@ public class FileManager extends BroadcastReceiver {
             case Intent.ACTION_MEDIA_MOUNTED:
             case Intent.ACTION_MEDIA_UNMOUNTED:
             case Intent.ACTION_MEDIA_REMOVED:
-                mCallback.onMediaChanged(count);
+                if (mCallback instanceof IMediaCallback) {
+                    Uri data = intent.getData();
+                    File path = (data != null && data.getPath() != null) ? new File(data.getPath()) : null;
+                    ((IMediaCallback) mCallback).onMediaChanged(count, action, path);
+                } else {
+                    mCallback.onMediaChanged(count);
+                }
                 break;
             default:
                 break;
@@ -64,6 +71,7 @@ public class FileManager extends BroadcastReceiver {
         filter.addAction(Intent.ACTION_MEDIA_MOUNTED);
         filter.addAction(Intent.ACTION_MEDIA_UNMOUNTED);
         filter.addAction(Intent.ACTION_MEDIA_REMOVED);
+        filter.addDataScheme("file");
         mContext.registerReceiver(this, filter);
     }
 
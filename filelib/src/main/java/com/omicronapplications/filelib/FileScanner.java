@@ -0,0 +1,473 @@
+package com.omicronapplications.filelib;
+
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.os.Process;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+public class FileScanner implements IMediaCallback {
+    public static final int PRIORITY_LOW = 0;
+    public static final int PRIORITY_NORMAL = 1;
+    public static final int PRIORITY_HIGH = 2;
+    public static final int RATE_UNLIMITED = 0;
+    private static final String TAG = "FileScanner";
+    private static final String PREFS_NAME = "filelib_scanner";
+    private static final String KEY_LAST = "last_";
+    private static final int CHECKPOINT_INTERVAL = 32;
+    private static final long NANOS_PER_SECOND = 1000000000L;
+    private static final long NANOS_PER_MILLI = 1000000L;
+    private final Context mContext;
+    private final String mId;
+    private final FileManager mFileManager;
+    private final IScanCallback mCallback;
+    private final FileFilter mFilter;
+    private final SharedPreferences mPrefs;
+    private final ThreadPoolExecutor mExecutor;
+    private final int mMaxThreads;
+    private final Map<Integer, ScanTask> mTasks = new HashMap<>();
+    private final Object mThrottleLock = new Object();
+    private final long mListInterval;
+    private long mNextListTime;
+    private long mNextSequence;
+    private boolean mReleased;
+
+    public FileScanner(Context context, String id, IScanCallback callback, FileFilter filter, int maxThreads, int maxDirsPerSecond) {
+        mContext = context;
+        mId = id;
+        mCallback = callback;
+        mFilter = filter;
+        mPrefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        if (maxThreads < 1) {
+            Log.w(TAG, "FileScanner: illegal thread count: " + maxThreads);
+            maxThreads = 1;
+        }
+        mMaxThreads = maxThreads;
+        if (maxDirsPerSecond < 0) {
+            Log.w(TAG, "FileScanner: illegal rate: " + maxDirsPerSecond);
+            maxDirsPerSecond = RATE_UNLIMITED;
+        }
+        mListInterval = (maxDirsPerSecond > 0) ? Math.max(1, NANOS_PER_SECOND / maxDirsPerSecond) : 0;
+        mNextListTime = System.nanoTime();
+        mExecutor = new ThreadPoolExecutor(maxThreads, maxThreads, 0L, TimeUnit.MILLISECONDS,
+                new PriorityBlockingQueue<Runnable>(), new ScanThreadFactory());
+        mFileManager = new FileManager(context);
+        mFileManager.setCallback(this);
+    }
+
+    public FileScanner(Context context, String id, IScanCallback callback, FileFilter filter) {
+        this(context, id, callback, filter, 1, RATE_UNLIMITED);
+    }
+
+    @Override
+    public void onMediaChanged(int count) {
+        onTopDirsChanged(mFileManager.getTopDirs());
+    }
+
+    @Override
+    public void onMediaChanged(int count, String action, File path) {
+        if (Intent.ACTION_MEDIA_EJECT.equals(action) || Intent.ACTION_MEDIA_UNMOUNTED.equals(action)
+                || Intent.ACTION_MEDIA_REMOVED.equals(action)) {
+            onMediaRemoved(path);
+        }
+        onTopDirsChanged(mFileManager.getTopDirs());
+    }
+
+    private synchronized void onMediaRemoved(File path) {
+        if (path == null) {
+            return;
+        }
+        String mount = path.getAbsolutePath();
+        for (ScanTask task : mTasks.values()) {
+            String top = task.mTopDir.getAbsolutePath();
+            if (top.equals(mount) || top.startsWith(mount + File.separator)) {
+                Log.w(TAG, "onMediaRemoved: media removed: " + task.mStorage);
+                task.cancel();
+            }
+        }
+    }
+
+    synchronized void onTopDirsChanged(List<File> dirs) {
+        for (ScanTask task : mTasks.values()) {
+            File dir = (task.mStorage < dirs.size()) ? dirs.get(task.mStorage) : null;
+            if (dir == null || !dir.equals(task.mTopDir) || !isValidDir(dir)) {
+                Log.w(TAG, "onTopDirsChanged: media removed: " + task.mStorage);
+                task.cancel();
+            }
+        }
+    }
+
+    public synchronized boolean scan(int storage, int priority) {
+        if (mReleased) {
+            Log.w(TAG, "scan: scanner released");
+            return false;
+        }
+        if (mTasks.containsKey(storage)) {
+            Log.w(TAG, "scan: already scanning: " + storage);
+            return false;
+        }
+        File top = mFileManager.getTopDir(storage);
+        if (!isValidDir(top)) {
+            Log.w(TAG, "scan: storage not available: " + storage);
+            return false;
+        }
+        preempt(priority);
+        ScanTask task = new ScanTask(storage, priority, mNextSequence++, top);
+        mTasks.put(storage, task);
+        mExecutor.execute(task);
+        return true;
+    }
+
+    public boolean scan(int storage) {
+        return scan(storage, PRIORITY_NORMAL);
+    }
+
+    public int scanAll(int priority) {
+        int count = 0;
+        int storages = mFileManager.getTopDirs().size();
+        for (int storage = FileManager.STORAGE_INTERNAL; storage < storages; storage++) {
+            if (scan(storage, priority)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    public synchronized void stop(int storage) {
+        ScanTask task = mTasks.get(storage);
+        if (task != null) {
+            task.cancel();
+        }
+    }
+
+    public synchronized void stopAll() {
+        for (ScanTask task : mTasks.values()) {
+            task.cancel();
+        }
+    }
+
+    public synchronized boolean isScanning(int storage) {
+        return mTasks.containsKey(storage);
+    }
+
+    public boolean hasCheckpoint(int storage) {
+        return mPrefs.contains(getKey(KEY_LAST, storage));
+    }
+
+    public void clearCheckpoint(int storage) {
+        mPrefs.edit()
+                .remove(getKey(KEY_LAST, storage))
+                .commit();
+    }
+
+    public synchronized void release() {
+        if (mReleased) {
+            return;
+        }
+        mReleased = true;
+        stopAll();
+        mFileManager.unsetCallback();
+        mExecutor.shutdown();
+    }
+
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return mExecutor.awaitTermination(timeout, unit);
+    }
+
+    private void preempt(int priority) {
+        int running = 0;
+        ScanTask lowest = null;
+        for (ScanTask task : mTasks.values()) {
+            if (!task.mRunning || task.isStopped()) {
+                continue;
+            }
+            running++;
+            if (task.mPriority < priority && (lowest == null || task.compareTo(lowest) > 0)) {
+                lowest = task;
+            }
+        }
+        if (running >= mMaxThreads && lowest != null) {
+            Log.i(TAG, "preempt: pausing " + lowest.mStorage);
+            lowest.pause();
+        }
+    }
+
+    private String getKey(String prefix, int storage) {
+        return prefix + mId + "_" + storage;
+    }
+
+    private File loadCheckpoint(int storage, File top) {
+        String last = mPrefs.getString(getKey(KEY_LAST, storage), null);
+        String topPath = top.getAbsolutePath();
+        if (last == null || !(last.equals(topPath) || last.startsWith(topPath + File.separator))) {
+            return null;
+        }
+        Log.i(TAG, "loadCheckpoint: resuming " + storage + " after " + last);
+        return new File(last);
+    }
+
+    private void saveCheckpoint(int storage, File last, boolean sync) {
+        SharedPreferences.Editor editor = mPrefs.edit()
+                .putString(getKey(KEY_LAST, storage), last.getAbsolutePath());
+        if (sync) {
+            editor.commit();
+        } else {
+            editor.apply();
+        }
+    }
+
+    private boolean throttle(ScanTask task) {
+        if (task.isStopped()) {
+            return false;
+        }
+        if (mListInterval <= 0) {
+            return true;
+        }
+        synchronized (mThrottleLock) {
+            long now = System.nanoTime();
+            long next = (mNextListTime - now > 0) ? mNextListTime : now;
+            mNextListTime = next + mListInterval;
+            try {
+                long remaining = next - System.nanoTime();
+                while (remaining > 0 && !task.isStopped()) {
+                    mThrottleLock.wait(remaining / NANOS_PER_MILLI, (int) (remaining % NANOS_PER_MILLI));
+                    remaining = next - System.nanoTime();
+                }
+            } catch (InterruptedException e) {
+                Log.w(TAG, "throttle: interrupted: " + task.mStorage);
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return !task.isStopped();
+    }
+
+    private synchronized boolean finish(ScanTask task, boolean resume) {
+        if (mTasks.get(task.mStorage) == task) {
+            mTasks.remove(task.mStorage);
+        }
+        if (!resume || !task.mPaused || task.mCancelled || mReleased) {
+            return false;
+        }
+        ScanTask resumed = new ScanTask(task.mStorage, task.mPriority, task.mSequence, task.mTopDir);
+        mTasks.put(task.mStorage, resumed);
+        mExecutor.execute(resumed);
+        return true;
+    }
+
+    private static boolean isValidDir(File dir) {
+        return (dir != null) && dir.exists() && dir.isDirectory();
+    }
+
+    private class ScanTask implements Runnable, Comparable<ScanTask> {
+        private final int mStorage;
+        private final int mPriority;
+        private final long mSequence;
+        private final File mTopDir;
+        private volatile boolean mCancelled;
+        private volatile boolean mPaused;
+        private boolean mRunning;
+        private File mLast;
+
+        private ScanTask(int storage, int priority, long sequence, File topDir) {
+            mStorage = storage;
+            mPriority = priority;
+            mSequence = sequence;
+            mTopDir = topDir;
+        }
+
+        private void cancel() {
+            mCancelled = true;
+            wake();
+        }
+
+        private void pause() {
+            mPaused = true;
+            wake();
+        }
+
+        private boolean isStopped() {
+            return mCancelled || mPaused;
+        }
+
+        private void wake() {
+            synchronized (mThrottleLock) {
+                mThrottleLock.notifyAll();
+            }
+        }
+
+        @Override
+        public int compareTo(ScanTask o) {
+            if (mPriority != o.mPriority) {
+                return (mPriority > o.mPriority) ? -1 : 1;
+            }
+            if (mSequence != o.mSequence) {
+                return (mSequence < o.mSequence) ? -1 : 1;
+            }
+            return 0;
+        }
+
+        @Override
+        public void run() {
+            synchronized (FileScanner.this) {
+                mRunning = true;
+            }
+            boolean completed = false;
+            boolean returned = false;
+            try {
+                if (!isStopped()) {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    mLast = loadCheckpoint(mStorage, mTopDir);
+                    completed = scan();
+                }
+                returned = true;
+            } finally {
+                try {
+                    if (completed) {
+                        clearCheckpoint(mStorage);
+                    } else if (mLast != null) {
+                        saveCheckpoint(mStorage, mLast, true);
+                    }
+                } finally {
+                    if (!finish(this, returned && !completed) && mCallback != null) {
+                        mCallback.onScanFinished(mStorage, completed);
+                    }
+                }
+            }
+        }
+
+        private boolean scan() {
+            ArrayDeque<Frame> frames = new ArrayDeque<>();
+            if (mLast == null) {
+                if (!throttle(this) || !visit(mTopDir, frames)) {
+                    return false;
+                }
+            } else if (!restore(mLast, frames)) {
+                return false;
+            }
+            int count = 0;
+            while (!frames.isEmpty()) {
+                Frame frame = frames.peekLast();
+                if (frame.mIndex >= frame.mDirs.length) {
+                    frames.pollLast();
+                    continue;
+                }
+                if (!throttle(this)) {
+                    return false;
+                }
+                File dir = frame.mDirs[frame.mIndex++];
+                if (!visit(dir, frames)) {
+                    return false;
+                }
+                if (++count % CHECKPOINT_INTERVAL == 0) {
+                    saveCheckpoint(mStorage, mLast, false);
+                }
+            }
+            return true;
+        }
+
+        private boolean visit(File dir, ArrayDeque<Frame> frames) {
+            File[] files = dir.listFiles();
+            if (files == null || !isValidDir(dir)) {
+                if (!isValidDir(mTopDir)) {
+                    Log.w(TAG, "visit: media removed: " + mStorage);
+                    return false;
+                }
+                Log.w(TAG, "visit: dir removed: " + dir);
+                return true;
+            }
+            List<File> dirs = new ArrayList<>();
+            for (File file : files) {
+                if (file.isDirectory()) {
+                    dirs.add(file);
+                } else if (mCallback != null && (mFilter == null || mFilter.accept(file))) {
+                    mCallback.onFileFound(mStorage, file);
+                }
+            }
+            frames.addLast(new Frame(sortDirs(dirs)));
+            mLast = dir;
+            return true;
+        }
+
+        private boolean restore(File last, ArrayDeque<Frame> frames) {
+            String path = last.getAbsolutePath().substring(mTopDir.getAbsolutePath().length());
+            File dir = mTopDir;
+            for (String name : path.split(File.separator)) {
+                if (name.isEmpty()) {
+                    continue;
+                }
+                if (!throttle(this)) {
+                    return false;
+                }
+                Frame frame = new Frame(listDirs(dir));
+                while (frame.mIndex < frame.mDirs.length && frame.mDirs[frame.mIndex].getName().compareTo(name) <= 0) {
+                    frame.mIndex++;
+                }
+                frames.addLast(frame);
+                dir = new File(dir, name);
+            }
+            if (!throttle(this)) {
+                return false;
+            }
+            frames.addLast(new Frame(listDirs(dir)));
+            return isValidDir(mTopDir);
+        }
+    }
+
+    private static File[] listDirs(File dir) {
+        List<File> dirs = new ArrayList<>();
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.isDirectory()) {
+                    dirs.add(file);
+                }
+            }
+        }
+        return sortDirs(dirs);
+    }
+
+    private static File[] sortDirs(List<File> dirs) {
+        Collections.sort(dirs, new NameComparator());
+        return dirs.toArray(new File[0]);
+    }
+
+    private static class Frame {
+        private final File[] mDirs;
+        private int mIndex;
+
+        private Frame(File[] dirs) {
+            mDirs = dirs;
+        }
+    }
+
+    private static class NameComparator implements Comparator<File> {
+        @Override
+        public int compare(File o1, File o2) {
+            return o1.getName().compareTo(o2.getName());
+        }
+    }
+
+    private static class ScanThreadFactory implements ThreadFactory {
+        private int mCount;
+
+        @Override
+        public synchronized Thread newThread(Runnable r) {
+            return new Thread(r, TAG + "-" + (++mCount));
+        }
+    }
+}
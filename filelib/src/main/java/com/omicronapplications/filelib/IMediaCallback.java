@@ -0,0 +1,7 @@
+package com.omicronapplications.filelib;
+
+import java.io.File;
+
+public interface IMediaCallback extends IMountCallback {
+    void onMediaChanged(int count, String action, File path);
+}
@@ -0,0 +1,8 @@
+package com.omicronapplications.filelib;
+
+import java.io.File;
+
+public interface IScanCallback {
+    void onFileFound(int storage, File file);
+    void onScanFinished(int storage, boolean completed);
+}